@@ -1,5 +1,6 @@
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.Scanner;
 
@@ -20,6 +21,9 @@ class ChessState {
     int[] m_rows;
     static ChessState.ChessMove aimove = new ChessState.ChessMove();
     static boolean playerTurn;
+    static SearchCache searchCache;
+    static SearchCoordinator coordinator;
+    static GameRecord.Writer recorder;
 
     ChessState() {
         m_rows = new int[8];
@@ -75,34 +79,187 @@ class ChessState {
         setPiece(7, 7, Rook, false);
     }
 
+    /// Material value of each piece type, indexed by piece code
+    static final int[] PIECE_VALUES = { 0, 10, 63, 31, 36, 88, 500 };
+
+    /// Pawn-structure terms, in the same units as PIECE_VALUES
+    static final int DOUBLED_PAWN = -4;
+    static final int ISOLATED_PAWN = -3;
+    /// Bonus for a passed pawn, indexed by its row counted from its own side's
+    /// back row (so a pawn still on its starting row is at index 1)
+    static final int[] PASSED_PAWN = { 0, 2, 3, 5, 8, 12, 18, 0 };
+
+    static PawnHashTable pawnTable = new PawnHashTable(16);
+
     /// Positive means white is favored. Negative means black is favored.
     int heuristic(Random rand)
     {
+        return evaluate(m_rows, 0) + rand.nextInt(3) - 1;
+    }
+
+    /// Material plus pawn structure of the board in rows[offset .. offset + 7]
+    static int evaluate(int[] rows, int offset) {
+        return material(rows, offset) + pawnTable.score(rows, offset);
+    }
+
+    /// Nibble-wise constants used by the SWAR evaluator. Two packed rows
+    /// are combined into one long, so each long holds 16 squares.
+    static final long NIBBLE_LOW_BITS = 0x1111111111111111L;
+    static final long NIBBLE_PIECE_BITS = 0x7777777777777777L;
+
+    /// Returns a mask with the low bit of every nibble in w set iff that
+    /// square holds the specified piece type (of either color).
+    static long nibblesEqual(long w, int piece) {
+        long y = (w & NIBBLE_PIECE_BITS) ^ (piece * NIBBLE_LOW_BITS);
+        return ~(y | (y >>> 1) | (y >>> 2)) & NIBBLE_LOW_BITS;
+    }
+
+    /// Material balance of the board stored in rows[offset .. offset + 7],
+    /// computed a word at a time instead of square by square.
+    /// Positive means white is favored. Negative means black is favored.
+    static int material(int[] rows, int offset) {
         int score = 0;
-        for(int y = 0; y < 8; y++)
-        {
-            for(int x = 0; x < 8; x++)
-            {
-                int p = getPiece(x, y);
-                int value;
-                switch(p)
-                {
-                    case None: value = 0; break;
-                    case Pawn: value = 10; break;
-                    case Rook: value = 63; break;
-                    case Knight: value = 31; break;
-                    case Bishop: value = 36; break;
-                    case Queen: value = 88; break;
-                    case King: value = 500; break;
-                    default: throw new RuntimeException("what?");
-                }
-                if(isWhite(x, y))
-                    score += value;
-                else
-                    score -= value;
+        for(int r = 0; r < 8; r += 2) {
+            long w = (rows[offset + r] & 0xffffffffL) | ((long)rows[offset + r + 1] << 32);
+            long white = (w >>> 3) & NIBBLE_LOW_BITS;
+            for(int p = Pawn; p <= King; p++) {
+                long eq = nibblesEqual(w, p);
+                score += PIECE_VALUES[p] * (2 * Long.bitCount(eq & white) - Long.bitCount(eq));
             }
         }
-        return score + rand.nextInt(3) - 1;
+        return score;
+    }
+
+    /// Returns a 64-bit hash of just the pawns in rows[offset .. offset + 7]
+    static long pawnKey(int[] rows, int offset) {
+        long h = 0;
+        for(int r = 0; r < 8; r += 2) {
+            long w = (rows[offset + r] & 0xffffffffL) | ((long)rows[offset + r + 1] << 32);
+            // Spreading each matching nibble's low bit over the nibble keeps just the pawns
+            h = mix64(h + (w & (nibblesEqual(w, Pawn) * 0xf)) + 0x9e3779b97f4a7c15L);
+        }
+        return h;
+    }
+
+    /// Per-byte masks for the rank-per-byte pawn boards used by pawnStructure
+    static final long EACH_RANK = 0x0101010101010101L;
+    static final long NOT_FILE_A = 0xfefefefefefefefeL;
+    static final long NOT_FILE_H = 0x7f7f7f7f7f7f7f7fL;
+
+    /// Returns a board with one byte per row (bit x of byte y set for column
+    /// x, row y) marking the squares that hold exactly the specified nibble,
+    /// e.g. Pawn | WhiteMask
+    static long squaresHolding(int[] rows, int offset, int nibble) {
+        long board = 0;
+        for(int r = 0; r < 8; r += 2) {
+            long w = (rows[offset + r] & 0xffffffffL) | ((long)rows[offset + r + 1] << 32);
+            long y = w ^ (nibble * NIBBLE_LOW_BITS);
+            long z = ~(y | (y >>> 1) | (y >>> 2) | (y >>> 3)) & NIBBLE_LOW_BITS;
+            // Gather the low bit of each nibble into one byte per row
+            z = (z | (z >>> 3)) & 0x0303030303030303L;
+            z = (z | (z >>> 6)) & 0x000f000f000f000fL;
+            z = (z | (z >>> 12)) & 0x000000ff000000ffL;
+            board |= ((z & 0xff) | ((z >>> 24) & 0xff00)) << (8 * r);
+        }
+        return board;
+    }
+
+    /// Marks the squares beside each marked square in the same row
+    static long neighbors(long board) {
+        return ((board << 1) & NOT_FILE_A) | ((board >>> 1) & NOT_FILE_H);
+    }
+
+    /// Marks, in every row, the columns marked in any row of board
+    static long fileFill(long board) {
+        board |= board >>> 32;
+        board |= board >>> 16;
+        board |= board >>> 8;
+        return (board & 0xff) * EACH_RANK;
+    }
+
+    /// Sums PASSED_PAWN over the pawns in board, where a pawn in row y gets PASSED_PAWN[y]
+    static int passedBonus(long board) {
+        int bonus = 0;
+        for(; board != 0; board &= board - 1)
+            bonus += PASSED_PAWN[Long.numberOfTrailingZeros(board) >>> 3];
+        return bonus;
+    }
+
+    /// Scores doubled, isolated and passed pawns of the board in
+    /// rows[offset .. offset + 7]. Each color's pawns are gathered into a
+    /// long with a byte per row, so every term is a few shifts and bit
+    /// counts. This is the slow path behind pawnTable.
+    static int pawnStructure(int[] rows, int offset) {
+        long white = squaresHolding(rows, offset, Pawn | WhiteMask);
+        long black = squaresHolding(rows, offset, Pawn);
+        long whiteFiles = fileFill(white);
+        long blackFiles = fileFill(black);
+        int score = 0;
+
+        // Pawns beyond the first on each file
+        score += DOUBLED_PAWN * ((Long.bitCount(white) - Long.bitCount(whiteFiles & 0xff))
+                - (Long.bitCount(black) - Long.bitCount(blackFiles & 0xff)));
+
+        // Pawns with no friendly pawn on either neighboring file
+        score += ISOLATED_PAWN * (Long.bitCount(white & ~neighbors(whiteFiles))
+                - Long.bitCount(black & ~neighbors(blackFiles)));
+
+        // Passed means no enemy pawn ahead on this file or the next ones.
+        // Of doubled pawns only the front one can be passed, so a pawn of the
+        // same color ahead on the file blocks too.
+        long whiteFront = (white | black | neighbors(black)) >>> 8;
+        whiteFront |= whiteFront >>> 8;
+        whiteFront |= whiteFront >>> 16;
+        whiteFront |= whiteFront >>> 32;
+        long blackFront = (black | white | neighbors(white)) << 8;
+        blackFront |= blackFront << 8;
+        blackFront |= blackFront << 16;
+        blackFront |= blackFront << 32;
+        score += passedBonus(white & ~whiteFront);
+        // Mirror the rows so dark's bonus is indexed from its own side
+        score -= passedBonus(Long.reverseBytes(black & ~blackFront));
+        return score;
+    }
+
+    /// Scores count positions stored back to back in packed, 8 ints per
+    /// position (the same layout as m_rows), writing the results to scores.
+    /// Unlike heuristic, no random noise is added, so results are repeatable.
+    /// Batches are mostly unrelated positions that would miss in pawnTable,
+    /// so pawn structure is computed directly and the table's hit rate only
+    /// reflects the search.
+    static void evaluateBatch(int[] packed, int count, int[] scores) {
+        if(packed.length < count * 8 || scores.length < count)
+            throw new IllegalArgumentException("buffers too small for " + count + " positions");
+        for(int i = 0, offset = 0; i < count; i++, offset += 8)
+            scores[i] = material(packed, offset) + pawnStructure(packed, offset);
+    }
+
+    /// Scores an array of positions. See evaluateBatch(int[], int, int[]).
+    static int[] evaluateBatch(ChessState[] states) {
+        int[] scores = new int[states.length];
+        for(int i = 0; i < states.length; i++)
+            scores[i] = material(states[i].m_rows, 0) + pawnStructure(states[i].m_rows, 0);
+        return scores;
+    }
+
+    /// Returns a 64-bit hash of the pieces on the board. The hash only
+    /// depends on the position, so it is the same in every process.
+    long hashKey() {
+        long h = 0;
+        for(int r = 0; r < 8; r += 2) {
+            long w = (m_rows[r] & 0xffffffffL) | ((long)m_rows[r + 1] << 32);
+            // An empty square may or may not have its white bit set
+            w &= ~(nibblesEqual(w, None) << 3);
+            h = mix64(h + w + 0x9e3779b97f4a7c15L);
+        }
+        return h;
+    }
+
+    /// The splitmix64 finalizer
+    static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
     }
 
     /// Returns an iterator that iterates over all possible moves for the specified color
@@ -173,15 +330,13 @@ class ChessState {
                 if(bWhite) {
                     if(!checkPawnMove(pOutMoves, col, inc(row), false, bWhite) && row == 1)
                         checkPawnMove(pOutMoves, col, inc(inc(row)), false, bWhite);
-                    checkPawnMove(pOutMoves, inc(col), inc(row), true, bWhite);
-                    checkPawnMove(pOutMoves, dec(col), inc(row), true, bWhite);
                 }
                 else {
                     if(!checkPawnMove(pOutMoves, col, dec(row), false, bWhite) && row == 6)
                         checkPawnMove(pOutMoves, col, dec(dec(row)), false, bWhite);
-                    checkPawnMove(pOutMoves, inc(col), dec(row), true, bWhite);
-                    checkPawnMove(pOutMoves, dec(col), dec(row), true, bWhite);
                 }
+                for(int t : PAWN_ATTACKS[bWhite ? 1 : 0][row * 8 + col])
+                    checkPawnMove(pOutMoves, t & 7, t >> 3, true, bWhite);
                 break;
             case Bishop:
                 for(i = inc(col), j=inc(row); true; i = inc(i), j = inc(j))
@@ -198,14 +353,8 @@ class ChessState {
                         break;
                 break;
             case Knight:
-                checkMove(pOutMoves, inc(inc(col)), inc(row), bWhite);
-                checkMove(pOutMoves, inc(col), inc(inc(row)), bWhite);
-                checkMove(pOutMoves, dec(col), inc(inc(row)), bWhite);
-                checkMove(pOutMoves, dec(dec(col)), inc(row), bWhite);
-                checkMove(pOutMoves, dec(dec(col)), dec(row), bWhite);
-                checkMove(pOutMoves, dec(col), dec(dec(row)), bWhite);
-                checkMove(pOutMoves, inc(col), dec(dec(row)), bWhite);
-                checkMove(pOutMoves, inc(inc(col)), dec(row), bWhite);
+                for(int t : KNIGHT_ATTACKS[row * 8 + col])
+                    checkMove(pOutMoves, t & 7, t >> 3, bWhite);
                 break;
             case Rook:
                 for(i = inc(col); true; i = inc(i))
@@ -248,14 +397,8 @@ class ChessState {
                         break;
                 break;
             case King:
-                checkMove(pOutMoves, inc(col), row, bWhite);
-                checkMove(pOutMoves, inc(col), inc(row), bWhite);
-                checkMove(pOutMoves, col, inc(row), bWhite);
-                checkMove(pOutMoves, dec(col), inc(row), bWhite);
-                checkMove(pOutMoves, dec(col), row, bWhite);
-                checkMove(pOutMoves, dec(col), dec(row), bWhite);
-                checkMove(pOutMoves, col, dec(row), bWhite);
-                checkMove(pOutMoves, inc(col), dec(row), bWhite);
+                for(int t : KING_ATTACKS[row * 8 + col])
+                    checkMove(pOutMoves, t & 7, t >> 3, bWhite);
                 break;
             default:
                 break;
@@ -343,6 +486,103 @@ class ChessState {
         return (p > 0);
     }
 
+    /// Square offsets (dx, dy) reached by a knight and by a king, in the order
+    /// that moves() reports them
+    static final int[][] KNIGHT_STEPS = { {2, 1}, {1, 2}, {-1, 2}, {-2, 1}, {-2, -1}, {-1, -2}, {1, -2}, {2, -1} };
+    static final int[][] KING_STEPS = { {1, 0}, {1, 1}, {0, 1}, {-1, 1}, {-1, 0}, {-1, -1}, {0, -1}, {1, -1} };
+
+    /// Directions a rook (first four) and a bishop (last four) slide in
+    static final int[][] SLIDE_STEPS = { {1, 0}, {-1, 0}, {0, 1}, {0, -1}, {1, 1}, {-1, 1}, {1, -1}, {-1, -1} };
+
+    /// Precomputed attack tables, indexed by square (row * 8 + col). Each entry
+    /// lists the attacked squares, also encoded as row * 8 + col.
+    /// PAWN_ATTACKS[0] is for dark pawns and PAWN_ATTACKS[1] for light pawns.
+    static final int[][] KNIGHT_ATTACKS = new int[64][];
+    static final int[][] KING_ATTACKS = new int[64][];
+    static final int[][][] PAWN_ATTACKS = new int[2][64][];
+
+    /// SLIDE_RAYS[d][sq] lists the squares from sq outward in direction
+    /// SLIDE_STEPS[d], nearest first, stopping at the edge of the board.
+    static final int[][][] SLIDE_RAYS = new int[8][64][];
+
+    static {
+        for(int sq = 0; sq < 64; sq++) {
+            int col = sq & 7;
+            int row = sq >> 3;
+            KNIGHT_ATTACKS[sq] = leaperTargets(col, row, KNIGHT_STEPS);
+            KING_ATTACKS[sq] = leaperTargets(col, row, KING_STEPS);
+            PAWN_ATTACKS[0][sq] = leaperTargets(col, row, new int[][] { {1, -1}, {-1, -1} });
+            PAWN_ATTACKS[1][sq] = leaperTargets(col, row, new int[][] { {1, 1}, {-1, 1} });
+            for(int d = 0; d < 8; d++) {
+                int n = 0;
+                int[] ray = new int[7];
+                for(int i = col + SLIDE_STEPS[d][0], j = row + SLIDE_STEPS[d][1];
+                        i >= 0 && i < 8 && j >= 0 && j < 8;
+                        i += SLIDE_STEPS[d][0], j += SLIDE_STEPS[d][1])
+                    ray[n++] = j * 8 + i;
+                SLIDE_RAYS[d][sq] = Arrays.copyOf(ray, n);
+            }
+        }
+    }
+
+    /// Returns the on-board squares reached from (col, row) by each of the steps
+    static int[] leaperTargets(int col, int row, int[][] steps) {
+        int n = 0;
+        int[] targets = new int[steps.length];
+        for(int[] step : steps) {
+            int i = col + step[0];
+            int j = row + step[1];
+            if(i >= 0 && i < 8 && j >= 0 && j < 8)
+                targets[n++] = j * 8 + i;
+        }
+        return Arrays.copyOf(targets, n);
+    }
+
+    /// Returns true iff a piece of the specified color could capture on
+    /// (col, row). Uses the attack tables, so no move list is generated.
+    boolean isAttacked(int col, int row, boolean byWhite) {
+        int sq = row * 8 + col;
+        if(hasAttacker(KNIGHT_ATTACKS[sq], Knight, byWhite))
+            return true;
+        if(hasAttacker(KING_ATTACKS[sq], King, byWhite))
+            return true;
+        // A pawn attacks sq from the squares a pawn of the other color on sq would attack
+        if(hasAttacker(PAWN_ATTACKS[byWhite ? 0 : 1][sq], Pawn, byWhite))
+            return true;
+        for(int d = 0; d < 8; d++) {
+            int slider = (d < 4 ? Rook : Bishop);
+            for(int t : SLIDE_RAYS[d][sq]) {
+                int p = getPiece(t & 7, t >> 3);
+                if(p == None)
+                    continue;
+                if((p == slider || p == Queen) && isWhite(t & 7, t >> 3) == byWhite)
+                    return true;
+                break;
+            }
+        }
+        return false;
+    }
+
+    boolean hasAttacker(int[] squares, int piece, boolean byWhite) {
+        for(int t : squares) {
+            if(getPiece(t & 7, t >> 3) == piece && isWhite(t & 7, t >> 3) == byWhite)
+                return true;
+        }
+        return false;
+    }
+
+    /// Returns true iff the king of the specified color is attacked. Returns
+    /// false if that king has already been taken.
+    boolean inCheck(boolean white) {
+        for(int y = 0; y < 8; y++) {
+            for(int x = 0; x < 8; x++) {
+                if(getPiece(x, y) == King && isWhite(x, y) == white)
+                    return isAttacked(x, y, !white);
+            }
+        }
+        return false;
+    }
+
     /// Represents a possible  move
     static class ChessMove {
         int xSource;
@@ -406,91 +646,214 @@ class ChessState {
     }
 
 
+    /// The most plies a single line may be extended by because the side to
+    /// move is in check at the horizon
+    static final int MAX_CHECK_EXTENSIONS = 2;
+
+    /// Mixed into the position hash to tell apart nodes that search the same
+    /// board for a different side or with a different objective
+    static final long KEY_MAX_PLAYER = 0x5851f42d4c957f2dL;
+    static final long KEY_SOURCE_PLAYER = 0x14057b7ef767814fL;
+    static final long KEY_PLAYER_TURN = 0x2545f4914f6cdd1dL;
+
+    /// A score the root is already known to reach, found outside this search
+    /// (SearchWorker sets it as other workers report back). Any node whose
+    /// window falls to or below it stops early, since nothing it finds can
+    /// change the root's choice. Stays at -9999 outside of workers.
+    static volatile int rootAlpha = -9999;
+
+    /// Counts the nodes cut short by rootAlpha. Their scores aren't true
+    /// bounds, so nodes above them leave them out of the search cache.
+    static int sharedCutoffs;
+
     // Fix return score, and fix Try every possible move
     // Use a depth of 5, no more than 8
     // Alpha starts -infinity, Beta starts +infinity
+    /// Scores are from the point of view of the side choosing the root move
+    /// (the side to move at max nodes), so positive is good for that side
+    /// whether it is light or dark.
     int minimax(ChessState inBoard, int depth, int alpha, int beta, boolean maxPlayer, boolean sourcePlayer) {
+        return minimax(inBoard, depth, alpha, beta, maxPlayer, sourcePlayer, MAX_CHECK_EXTENSIONS);
+    }
+
+    int minimax(ChessState inBoard, int depth, int alpha, int beta, boolean maxPlayer, boolean sourcePlayer, int extensions) {
 
         ChessState node = new ChessState(inBoard);
         int score;
         ChessState.ChessMove bestMove = new ChessState.ChessMove();
 
+        // Don't stop the search while the side to move is in check. Its
+        // replies are scored statically, so only those that get the king out
+        // of check are tried. If there are none, it has lost.
+        boolean evasionsOnly = false;
+        if(depth == 0 && extensions > 0 && node.inCheck(sourcePlayer)) {
+            depth = 1;
+            extensions--;
+            evasionsOnly = true;
+        }
+
         if(depth == 0 || heuristicWin(node)) {
             Random rand = new Random();
-            score = heuristic(rand);
-            return score;
+            score = node.heuristic(rand);
+            // heuristic favors white, so flip it when dark is choosing the root move
+            boolean rootWhite = (maxPlayer ? sourcePlayer : !sourcePlayer);
+            return rootWhite ? score : -score;
         }
 
+        long key = 0;
+        int alphaOrig = alpha;
+        int betaOrig = beta;
+        if(searchCache != null) {
+            key = node.hashKey() ^ (maxPlayer ? KEY_MAX_PLAYER : 0)
+                    ^ (sourcePlayer ? KEY_SOURCE_PLAYER : 0) ^ (playerTurn ? KEY_PLAYER_TURN : 0);
+            long data = searchCache.probe(key);
+            // A max node reports its best move through aimove, so it can only
+            // stop here if the entry has one
+            if(data != 0 && SearchCache.depthOf(data) >= depth && (!maxPlayer || SearchCache.hasMove(data))) {
+                int cached = SearchCache.scoreOf(data);
+                int bound = SearchCache.boundOf(data);
+                if(bound == SearchCache.EXACT
+                        || (bound == SearchCache.LOWER && cached >= beta)
+                        || (bound == SearchCache.UPPER && cached <= alpha)) {
+                    if(maxPlayer) {
+                        aimove = new ChessState.ChessMove();
+                        SearchCache.moveOf(data, aimove);
+                    }
+                    return cached;
+                }
+            }
+        }
+
+        int[] saved = new int[8];
+        boolean foundMove = false;
+        int cutoffsBefore = sharedCutoffs;
         if(maxPlayer) {
             score = -9999;
             int bestValue = -9999;
             ChessMoveIterator it = node.iterator(sourcePlayer);
-            ChessState.ChessMove m = new ChessState.ChessMove();
             ChessState.ChessMove temp;
             while(it.hasNext()){
                 
                 temp = it.next();
-                m.xDest = temp.xSource;
-                m.xSource = temp.xDest;
-                m.yDest = temp.ySource;
-                m.ySource = temp.yDest;
+                System.arraycopy(node.m_rows, 0, saved, 0, 8);
                 
                 try{
                     node.move(temp.xSource,temp.ySource,temp.xDest, temp.yDest);
-                    score = minimax(node,depth-1,alpha,beta,false,!sourcePlayer);
+                    if(evasionsOnly && node.inCheck(sourcePlayer)) {
+                        System.arraycopy(saved, 0, node.m_rows, 0, 8);
+                        continue;
+                    }
+                    score = minimax(node,depth-1,alpha,beta,false,!sourcePlayer,extensions);
                     if(score > bestValue) {
                         bestValue = score;
                         bestMove = temp;
+                        foundMove = true;
                     }
                     alpha = Math.max(bestValue, alpha);
-                    node.move(m.xSource,m.ySource,m.xDest, m.yDest);
                 }
                 catch(Exception e) {
                     System.out.println("Minimax exception.");
                 }
+                // Undo the move, including any captured piece or promotion
+                System.arraycopy(saved, 0, node.m_rows, 0, 8);
                 
                 if(beta <= alpha) {
                     break;
                 }
+                if(beta <= rootAlpha) {
+                    sharedCutoffs++;
+                    break;
+                }
             }
             aimove = bestMove;
+            if(sharedCutoffs == cutoffsBefore)
+                storeResult(key, depth, bestValue, alphaOrig, betaOrig, foundMove ? bestMove : null);
             return bestValue;
         }
         else {
             score = 9999;
             int bestValue = 9999;
             ChessMoveIterator it = node.iterator(sourcePlayer);
-            ChessState.ChessMove m = new ChessState.ChessMove();
             ChessState.ChessMove temp;
             while(it.hasNext()){
                 
                 temp = it.next();
-                m.xDest = temp.xSource;
-                m.xSource = temp.xDest;
-                m.yDest = temp.ySource;
-                m.ySource = temp.yDest;
+                System.arraycopy(node.m_rows, 0, saved, 0, 8);
                 
                 try{
                     node.move(temp.xSource,temp.ySource,temp.xDest, temp.yDest);
-                    score = minimax(node,depth-1,alpha,beta,true,!sourcePlayer);
+                    if(evasionsOnly && node.inCheck(sourcePlayer)) {
+                        System.arraycopy(saved, 0, node.m_rows, 0, 8);
+                        continue;
+                    }
+                    score = minimax(node,depth-1,alpha,beta,true,!sourcePlayer,extensions);
                     if(score < bestValue) {
                         bestValue = score;
+                        bestMove = temp;
+                        foundMove = true;
                     }
                     beta = Math.min(bestValue, beta);
-                    node.move(m.xSource,m.ySource,m.xDest, m.yDest);
                 }
                 catch(Exception e) {
                     System.out.println("Minimax exception.");
                 }
+                System.arraycopy(saved, 0, node.m_rows, 0, 8);
                 
                 if(beta <= alpha) {
                     break;
                 }
+                if(beta <= rootAlpha) {
+                    sharedCutoffs++;
+                    break;
+                }
             }
+            if(sharedCutoffs == cutoffsBefore)
+                storeResult(key, depth, bestValue, alphaOrig, betaOrig, foundMove ? bestMove : null);
             return bestValue;
         }
     }
 
+    /// Records a node's result in the search cache, if there is one
+    static void storeResult(long key, int depth, int bestValue, int alpha, int beta, ChessState.ChessMove bestMove) {
+        if(searchCache == null)
+            return;
+        int bound = SearchCache.EXACT;
+        if(bestValue <= alpha)
+            bound = SearchCache.UPPER;
+        else if(bestValue >= beta)
+            bound = SearchCache.LOWER;
+        searchCache.store(key, depth, bestValue, bound, bestMove);
+    }
+
+    /// Prints how often this process found positions in the search cache
+    /// (which, with a cache file, includes what earlier processes left
+    /// there) and pawn structures already scored. Skips a table this process
+    /// didn't use (when workers did the searching, they report their own rates).
+    static void reportHitRates(PrintStream stream, String prefix) {
+        if(searchCache != null && searchCache.m_probes > 0)
+            stream.print(String.format("%sSearch cache hit rate: %.1f%%%n", prefix, 100.0 * searchCache.hitRate()));
+        if(pawnTable.m_probes > 0)
+            stream.print(String.format("%sPawn hash hit rate: %.1f%%%n", prefix, 100.0 * pawnTable.hitRate()));
+    }
+
+    /// Searches for a move for the specified color and leaves it in aimove,
+    /// spreading the search over worker processes if any are configured.
+    /// Returns the score of that move. Positive means white is favored.
+    static int think(ChessState cs, int depth, boolean white) {
+        int score;
+        if(coordinator != null)
+            score = coordinator.search(cs, depth, white);
+        else
+            score = cs.minimax(cs, depth, -9999, 9999, true, white);
+        return white ? score : -score;
+    }
+
+    /// Adds the position about to be moved from to the game record, if one is being kept
+    static void record(ChessState cs, boolean white, int score) {
+        if(recorder != null)
+            recorder.addPosition(cs, white, score);
+    }
+
     public static int[] inputToMove(String s) {
         int m[] = new int[4];
 
@@ -673,6 +1036,27 @@ class ChessState {
             }
         }
 
+        // Reuses whatever an earlier process left in the cache file, if any
+        searchCache = SearchCache.fromProperties();
+        coordinator = SearchCoordinator.fromProperties();
+        if(coordinator != null)
+            Runtime.getRuntime().addShutdownHook(new Thread(coordinator::close));
+        // Quitting with q exits from inside the game loop, so report from a hook
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> reportHitRates(System.out, "")));
+        if(System.getProperty("chess.record") != null) {
+            recorder = new GameRecord.Writer(System.getProperty("chess.record"));
+            recorder.beginGame();
+            // Quitting mid-game still saves the game so far, marked unfinished
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    recorder.close();
+                }
+                catch(Exception e) {
+                    System.out.println("Could not save the game record.");
+                }
+            }));
+        }
+
         // Maybe limit depth to 8?
         ChessState cs = new ChessState();
         cs.resetBoard();
@@ -681,11 +1065,12 @@ class ChessState {
         while(!checkWin(cs)) {
 
             playerTurn = false;
+            int score = 0;
             
             // If human player, else AI
             if(human1) {
                 if(human1help) {
-                    cs.minimax(cs, 8, -9999, 9999, true, true);
+                    score = think(cs, 8, true);
                     System.out.println("Suggested move: " + 
                             intToLetterChess(aimove.xSource) + (aimove.ySource +1) + 
                             intToLetterChess(aimove.xDest) + (aimove.yDest +1));
@@ -715,12 +1100,14 @@ class ChessState {
                 }
                 
                 // Perform move
+                record(cs, true, score);
                 cs.move(validMove[0], validMove[1], validMove[2], validMove[3]);
             }
             else {
                 cs.printBoard(System.out);
                 
-                cs.minimax(cs, play1, -9999, 9999, true, true);
+                score = think(cs, play1, true);
+                record(cs, true, score);
                 cs.move(aimove.xSource, aimove.ySource, aimove.xDest, aimove.yDest);
             }
 
@@ -731,6 +1118,7 @@ class ChessState {
             }
 
             playerTurn = true;
+            score = 0;
             
             // If human player, else AI
             if(human2) {
@@ -749,15 +1137,23 @@ class ChessState {
                     }
                     invalidPrompt();
                 }
+                record(cs, false, score);
                 cs.move(validMove[0], validMove[1], validMove[2], validMove[3]);
             }
             else {
                 cs.printBoard(System.out);
                 
-                cs.minimax(cs, play2, -9999, 9999, true, false);
+                score = think(cs, play2, false);
+                record(cs, false, score);
                 cs.move(aimove.xSource, aimove.ySource, aimove.xDest, aimove.yDest);
             }
         }
+        searchCache.flush();
+        if(recorder != null) {
+            // checkWin ended the game because one side has no moves left
+            recorder.endGame(cs.iterator(true).hasNext() ? GameRecord.WHITE_WINS : GameRecord.BLACK_WINS);
+            recorder.close();
+        }
 
 //            ChessState s = new ChessState();             // Make a new state
 //            s.resetBoard();                              // Initialize to starting setup
@@ -0,0 +1,271 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/// A compact binary file of position samples, used to record games and to
+/// feed tuning. The file is a HEADER_BYTES header (magic, version, record
+/// size) followed by fixed-size little-endian records:
+///
+///   offset  size  field
+///        0    32  the 8 packed rows, as in ChessState.m_rows
+///       32     4  search score (positive favors white), 0 if not searched
+///       36     4  game number
+///       40     2  ply within the game
+///       42     1  1 if white is to move, otherwise 0
+///       43     1  result of the game: WHITE_WINS, BLACK_WINS, DRAW or UNFINISHED
+///
+/// Because records have a fixed size, record i starts at
+/// HEADER_BYTES + i * RECORD_BYTES.
+class GameRecord {
+    static final int MAGIC = 0x43484752; // "CHGR"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    static final int RECORD_BYTES = 44;
+
+    static final int BLACK_WINS = -1;
+    static final int DRAW = 0;
+    static final int WHITE_WINS = 1;
+    static final int UNFINISHED = 2;
+
+    /// Appends records to a file through a buffered channel. Positions added
+    /// during a game are held until endGame, so every record carries the
+    /// game's result. A file has one writer at a time: the Writer holds a
+    /// lock on it until close, so parallel self-play processes each need
+    /// their own file.
+    static class Writer {
+        /// Files open for writing in this process. Closing any channel to a
+        /// file drops this process's lock on it, so a second writer here has
+        /// to be refused before it opens a channel at all.
+        static final HashSet<Path> openPaths = new HashSet<Path>();
+
+        Path m_path;
+        FileChannel m_channel;
+        ByteBuffer m_buf;
+        ArrayList<int[]> m_game = new ArrayList<int[]>();
+        int m_gameNumber;
+        boolean m_inGame;
+
+        /// Opens path for appending, creating it if needed. Fails if another
+        /// Writer already has it open.
+        Writer(String path) throws IOException {
+            m_path = Paths.get(path).toAbsolutePath().normalize();
+            synchronized(openPaths) {
+                if(!openPaths.add(m_path))
+                    throw new IOException(path + " is already being written by this process");
+            }
+            try {
+                m_channel = FileChannel.open(m_path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            catch(IOException e) {
+                release();
+                throw e;
+            }
+            m_buf = ByteBuffer.allocateDirect(RECORD_BYTES * (65536 / RECORD_BYTES)).order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                // Two writers would both continue from the same end of file and
+                // overwrite each other's records. The lock goes when the channel closes.
+                boolean locked;
+                try {
+                    locked = (m_channel.tryLock() != null);
+                }
+                catch(OverlappingFileLockException e) {
+                    locked = false;
+                }
+                if(!locked)
+                    throw new IOException(path + " is already being written by another process");
+                long size = m_channel.size();
+                if(size == 0) {
+                    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                    header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_BYTES).putInt(0).flip();
+                    while(header.hasRemaining())
+                        m_channel.write(header);
+                }
+                else {
+                    checkHeader(m_channel);
+                    // Continue the game numbering, dropping any partly written record
+                    long count = (size - HEADER_BYTES) / RECORD_BYTES;
+                    if(count > 0) {
+                        ByteBuffer last = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                        m_channel.read(last, HEADER_BYTES + (count - 1) * RECORD_BYTES + 36);
+                        m_gameNumber = last.getInt(0) + 1;
+                    }
+                    m_channel.truncate(HEADER_BYTES + count * RECORD_BYTES);
+                }
+                m_channel.position(m_channel.size());
+            }
+            catch(IOException e) {
+                m_channel.close();
+                release();
+                throw e;
+            }
+        }
+
+        void release() {
+            synchronized(openPaths) {
+                openPaths.remove(m_path);
+            }
+        }
+
+        /// Adds one sample to the write buffer. It reaches the file when the
+        /// buffer fills, or on flush or close.
+        void add(int[] rows, boolean whiteToMove, int score, int game, int ply, int result) throws IOException {
+            if(m_buf.remaining() < RECORD_BYTES)
+                flush();
+            for(int i = 0; i < 8; i++)
+                m_buf.putInt(rows[i]);
+            m_buf.putInt(score);
+            m_buf.putInt(game);
+            m_buf.putShort((short)ply);
+            m_buf.put((byte)(whiteToMove ? 1 : 0));
+            m_buf.put((byte)result);
+        }
+
+        /// Starts a new game, ending any game in progress as UNFINISHED
+        void beginGame() throws IOException {
+            if(m_inGame)
+                endGame(UNFINISHED);
+            m_inGame = true;
+        }
+
+        /// Adds the position s, before the side to move has moved
+        void addPosition(ChessState s, boolean whiteToMove, int score) {
+            int[] p = new int[10];
+            System.arraycopy(s.m_rows, 0, p, 0, 8);
+            p[8] = score;
+            p[9] = (whiteToMove ? 1 : 0);
+            m_game.add(p);
+        }
+
+        /// Writes out the positions of the current game with its result
+        void endGame(int result) throws IOException {
+            for(int ply = 0; ply < m_game.size(); ply++) {
+                int[] p = m_game.get(ply);
+                add(p, p[9] != 0, p[8], m_gameNumber, ply, result);
+            }
+            m_game.clear();
+            m_gameNumber++;
+            m_inGame = false;
+        }
+
+        void flush() throws IOException {
+            m_buf.flip();
+            while(m_buf.hasRemaining())
+                m_channel.write(m_buf);
+            m_buf.clear();
+        }
+
+        /// Ends any game in progress as UNFINISHED and closes the file
+        void close() throws IOException {
+            if(!m_channel.isOpen())
+                return;
+            if(m_inGame)
+                endGame(UNFINISHED);
+            try {
+                flush();
+            }
+            finally {
+                m_channel.close();
+                release();
+            }
+        }
+    }
+
+    /// Random access to the records of a file through read-only memory
+    /// mappings. Nothing is copied until a field is asked for.
+    static class Reader {
+        /// Records per mapping, so each mapping stays under the 2GB limit of a ByteBuffer
+        static final int CHUNK_RECORDS = (1 << 30) / RECORD_BYTES;
+
+        ByteBuffer[] m_chunks;
+        long m_count;
+
+        Reader(String path) throws IOException {
+            Path p = Paths.get(path);
+            try(FileChannel channel = FileChannel.open(p, StandardOpenOption.READ)) {
+                checkHeader(channel);
+                m_count = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+                m_chunks = new ByteBuffer[(int)((m_count + CHUNK_RECORDS - 1) / CHUNK_RECORDS)];
+                for(int i = 0; i < m_chunks.length; i++) {
+                    long first = (long)i * CHUNK_RECORDS;
+                    long records = Math.min(CHUNK_RECORDS, m_count - first);
+                    m_chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                            HEADER_BYTES + first * RECORD_BYTES, records * RECORD_BYTES)
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+        }
+
+        /// Number of records in the file
+        long size() {
+            return m_count;
+        }
+
+        ByteBuffer chunk(long index) {
+            if(index < 0 || index >= m_count)
+                throw new IndexOutOfBoundsException("record " + index + " of " + m_count);
+            return m_chunks[(int)(index / CHUNK_RECORDS)];
+        }
+
+        int offset(long index) {
+            return (int)(index % CHUNK_RECORDS) * RECORD_BYTES;
+        }
+
+        /// Copies the packed rows of record index into dest[destOffset .. destOffset + 7]
+        void rows(long index, int[] dest, int destOffset) {
+            ByteBuffer b = chunk(index);
+            int o = offset(index);
+            for(int i = 0; i < 8; i++)
+                dest[destOffset + i] = b.getInt(o + 4 * i);
+        }
+
+        /// Copies the rows of count records starting at first into dest, 8
+        /// ints per record, ready for ChessState.evaluateBatch
+        void rows(long first, int count, int[] dest) {
+            for(int i = 0; i < count; i++)
+                rows(first + i, dest, 8 * i);
+        }
+
+        ChessState state(long index) {
+            ChessState s = new ChessState();
+            rows(index, s.m_rows, 0);
+            return s;
+        }
+
+        int score(long index) {
+            return chunk(index).getInt(offset(index) + 32);
+        }
+
+        int game(long index) {
+            return chunk(index).getInt(offset(index) + 36);
+        }
+
+        int ply(long index) {
+            return chunk(index).getShort(offset(index) + 40) & 0xffff;
+        }
+
+        boolean whiteToMove(long index) {
+            return chunk(index).get(offset(index) + 42) != 0;
+        }
+
+        int result(long index) {
+            return chunk(index).get(offset(index) + 43);
+        }
+    }
+
+    static void checkHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        if(header.getInt(0) != MAGIC)
+            throw new IOException("not a game record file");
+        if(header.getInt(4) != VERSION || header.getInt(8) != RECORD_BYTES)
+            throw new IOException("unsupported game record version " + header.getInt(4));
+    }
+}
@@ -0,0 +1,40 @@
+/// Remembers pawn-structure scores by pawn-only hash (see ChessState.pawnKey).
+/// Pawns move rarely compared to how often positions are evaluated, so most
+/// evaluations find their pawn structure here instead of recomputing it.
+///
+/// Each entry is a single long: the top 48 bits of the key and the score in
+/// the low 16 bits, so an entry is never seen half written.
+class PawnHashTable {
+    static final long KEY_BITS = 0xffffffffffff0000L;
+
+    long[] m_entries;
+    int m_mask;
+    long m_probes;
+    long m_hits;
+
+    /// Makes a table with 2^bits entries
+    PawnHashTable(int bits) {
+        m_entries = new long[1 << bits];
+        m_mask = m_entries.length - 1;
+    }
+
+    /// Returns the score of the pawn structure in rows[offset .. offset + 7]
+    int score(int[] rows, int offset) {
+        long key = ChessState.pawnKey(rows, offset);
+        int i = (int)key & m_mask;
+        long entry = m_entries[i];
+        m_probes++;
+        if(entry != 0 && (entry & KEY_BITS) == (key & KEY_BITS)) {
+            m_hits++;
+            return (short)entry;
+        }
+        int score = ChessState.pawnStructure(rows, offset);
+        m_entries[i] = (key & KEY_BITS) | (score & 0xffff);
+        return score;
+    }
+
+    /// Fraction of lookups that found their pawn structure already scored
+    double hitRate() {
+        return m_probes == 0 ? 0.0 : (double)m_hits / m_probes;
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/// A transposition table for minimax. The table lives in a ByteBuffer, which
+/// is either on the heap or a memory-mapped file. When it is mapped, a new
+/// engine process that opens the same file starts with everything earlier
+/// processes searched, with nothing to deserialize.
+///
+/// File layout: a HEADER_BYTES header (magic, version, capacity, entry size)
+/// followed by capacity entries of ENTRY_BYTES each. Each entry is the
+/// position key xor'ed with the data, then the data. Storing the key that
+/// way means a torn write (from another process sharing the file) fails the
+/// key check instead of returning a wrong score.
+class SearchCache {
+    static final int MAGIC = 0x43485454; // "CHTT"
+    /// Bump this whenever the key scheme, the entry layout or the meaning
+    /// of stored scores changes, so stale files are discarded on open.
+    static final int VERSION = 4;
+    static final int HEADER_BYTES = 32;
+    static final int ENTRY_BYTES = 16;
+    static final int MAX_MEGABYTES = 1024;
+
+    /// Bound types
+    static final int EXACT = 1;
+    static final int LOWER = 2;
+    static final int UPPER = 3;
+
+    ByteBuffer m_buf;
+    int m_mask;
+    long m_probes;
+    long m_hits;
+
+    /// Makes an in-memory table of about the specified size
+    SearchCache(int megabytes) {
+        this(ByteBuffer.allocate(byteSize(capacityFor(megabytes))), capacityFor(megabytes));
+    }
+
+    SearchCache(ByteBuffer buf, int capacity) {
+        m_buf = buf;
+        m_mask = capacity - 1;
+        if(buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+                || buf.getInt(8) != capacity || buf.getInt(12) != ENTRY_BYTES)
+            clear();
+    }
+
+    /// Opens (or creates) a table of about the specified size backed by the
+    /// file at path. Entries already in the file are kept if its header
+    /// matches this version and size, otherwise the table starts empty.
+    static SearchCache open(String path, int megabytes) throws IOException {
+        int capacity = capacityFor(megabytes);
+        try(RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buf = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, byteSize(capacity));
+            return new SearchCache(buf, capacity);
+        }
+    }
+
+    /// Makes a table as configured by the chess.cache (file path) and
+    /// chess.cacheMB (size) system properties. Without chess.cache the
+    /// table is kept in memory.
+    static SearchCache fromProperties() throws IOException {
+        int megabytes = Integer.getInteger("chess.cacheMB", 16);
+        String path = System.getProperty("chess.cache");
+        if(path == null)
+            return new SearchCache(megabytes);
+        return open(path, megabytes);
+    }
+
+    /// Returns the largest power-of-two entry count that fits in megabytes
+    static int capacityFor(int megabytes) {
+        if(megabytes < 1 || megabytes > MAX_MEGABYTES)
+            throw new IllegalArgumentException("cache size must be 1 to " + MAX_MEGABYTES + " MB");
+        return Integer.highestOneBit((int)((megabytes * 1048576L) / ENTRY_BYTES));
+    }
+
+    static int byteSize(int capacity) {
+        return HEADER_BYTES + capacity * ENTRY_BYTES;
+    }
+
+    /// Empties the table and writes a fresh header
+    void clear() {
+        for(int i = 0; i < m_buf.capacity(); i += 8)
+            m_buf.putLong(i, 0);
+        m_buf.putInt(0, MAGIC);
+        m_buf.putInt(4, VERSION);
+        m_buf.putInt(8, m_mask + 1);
+        m_buf.putInt(12, ENTRY_BYTES);
+    }
+
+    /// Returns the data stored for key, or 0 if there is none
+    long probe(long key) {
+        m_probes++;
+        int offset = HEADER_BYTES + (int)(key & m_mask) * ENTRY_BYTES;
+        long data = m_buf.getLong(offset + 8);
+        if(data == 0 || (m_buf.getLong(offset) ^ data) != key)
+            return 0;
+        m_hits++;
+        return data;
+    }
+
+    /// Records the result of searching the position with the specified key.
+    /// move may be null if the node had no moves to try.
+    void store(long key, int depth, int score, int bound, ChessState.ChessMove move) {
+        int offset = HEADER_BYTES + (int)(key & m_mask) * ENTRY_BYTES;
+        long old = m_buf.getLong(offset + 8);
+        if(old != 0 && (m_buf.getLong(offset) ^ old) == key && depthOf(old) > depth)
+            return; // keep the deeper result for the same position
+        long data = (score & 0xffffffffL)
+                | ((long)Math.min(depth, 255) << 32)
+                | ((long)bound << 40);
+        if(move != null) {
+            data |= (long)(move.xSource | (move.ySource << 3) | (move.xDest << 6) | (move.yDest << 9)) << 42;
+            data |= 1L << 54;
+        }
+        m_buf.putLong(offset, key ^ data);
+        m_buf.putLong(offset + 8, data);
+    }
+
+    static int scoreOf(long data) {
+        return (int)data;
+    }
+
+    static int depthOf(long data) {
+        return (int)(data >>> 32) & 0xff;
+    }
+
+    static int boundOf(long data) {
+        return (int)(data >>> 40) & 3;
+    }
+
+    static boolean hasMove(long data) {
+        return ((data >>> 54) & 1) != 0;
+    }
+
+    /// Unpacks the best move stored in data into m
+    static void moveOf(long data, ChessState.ChessMove m) {
+        int bits = (int)(data >>> 42) & 0xfff;
+        m.xSource = bits & 7;
+        m.ySource = (bits >> 3) & 7;
+        m.xDest = (bits >> 6) & 7;
+        m.yDest = (bits >> 9) & 7;
+    }
+
+    /// Fraction of probes that found an entry
+    double hitRate() {
+        return m_probes == 0 ? 0.0 : (double)m_hits / m_probes;
+    }
+
+    /// Writes a mapped table's dirty pages out to its file
+    void flush() {
+        if(m_buf instanceof MappedByteBuffer)
+            ((MappedByteBuffer)m_buf).force();
+    }
+}
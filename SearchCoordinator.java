@@ -0,0 +1,386 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/// Splits the root moves of a search across SearchWorker processes. Each
+/// worker pulls the next unsearched root move when it goes idle, and once
+/// none are left, idle workers also take root moves that are still running
+/// elsewhere (the first result wins, and the other copies are stopped).
+/// Every improvement of the root's alpha is sent to all workers. If a
+/// worker dies, its root move goes back in the queue, and if every worker
+/// dies, whatever is left is searched in this process.
+///
+/// A worker host that crashes or drops off the network may never close its
+/// connection, so while waiting on a worker the coordinator sends PING
+/// every quarter of the timeout, and gives up on a worker that has said
+/// nothing (no PONG, no RESULT) for the whole timeout.
+class SearchCoordinator {
+    /// Connection to one worker process
+    static class Worker {
+        /// Queued by the reader thread once the connection is gone
+        static final String CLOSED = "";
+
+        String name;
+        Socket socket;
+        PrintWriter out;
+        Process process;
+        boolean alive = true;
+        LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+
+        Worker(String name, Socket socket) throws IOException {
+            this.name = name;
+            this.socket = socket;
+            out = new PrintWriter(socket.getOutputStream(), true);
+            // Lines are read on their own thread so waiting for them can time
+            // out without losing half a line
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            Thread reader = new Thread(() -> {
+                try {
+                    String line;
+                    while((line = in.readLine()) != null)
+                        lines.add(line);
+                }
+                catch(IOException e) {
+                }
+                lines.add(CLOSED);
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized void send(String line) {
+            out.println(line);
+        }
+
+        /// Returns the next line from the worker, or null if none came within
+        /// timeoutMs (0 waits forever)
+        String readLine(int timeoutMs) throws IOException {
+            String line;
+            try {
+                line = (timeoutMs > 0 ? lines.poll(timeoutMs, TimeUnit.MILLISECONDS) : lines.take());
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+            if(line == CLOSED) {
+                lines.add(CLOSED);
+                throw new IOException("connection closed");
+            }
+            return line;
+        }
+
+        void close() {
+            alive = false;
+            try {
+                socket.close();
+            }
+            catch(IOException e) {
+            }
+            if(process != null)
+                process.destroy();
+        }
+    }
+
+    static final int CONNECT_TIMEOUT_MS = 5000;
+    static final int DEFAULT_TIMEOUT_MS = 10000;
+    static final int QUIT_WAIT_MS = 1000;
+
+    ArrayList<Worker> m_workers = new ArrayList<Worker>();
+    int m_timeoutMs;
+    int m_searchId;
+
+    // State of the search in progress, guarded by this
+    ChessState[] m_children;
+    boolean[] m_done;
+    ArrayList<ArrayList<Worker>> m_runners;
+    ArrayDeque<Integer> m_pending;
+    int m_alpha;
+    int m_best;
+
+    /// timeoutMs is how long a busy worker may go without answering a PING
+    /// before it is treated as dead. 0 waits forever.
+    SearchCoordinator(int timeoutMs) {
+        m_timeoutMs = timeoutMs;
+    }
+
+    /// Connects to workers already listening at the specified "host:port" addresses
+    static SearchCoordinator connect(String[] addresses, int timeoutMs) throws IOException {
+        SearchCoordinator c = new SearchCoordinator(timeoutMs);
+        for(String address : addresses) {
+            int colon = address.lastIndexOf(':');
+            c.add(new Worker(address, c.open(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)))));
+        }
+        return c;
+    }
+
+    /// Starts count worker processes on this machine and connects to them
+    static SearchCoordinator spawnLocal(int count, int timeoutMs) throws IOException {
+        SearchCoordinator c = new SearchCoordinator(timeoutMs);
+        for(int i = 0; i < count; i++) {
+            ArrayList<String> cmd = new ArrayList<String>();
+            cmd.add(System.getProperty("java.home") + "/bin/java");
+            cmd.add("-cp");
+            cmd.add(System.getProperty("java.class.path"));
+            // Workers on one machine can share the cache file
+            for(String prop : new String[] { "chess.cache", "chess.cacheMB" }) {
+                if(System.getProperty(prop) != null)
+                    cmd.add("-D" + prop + "=" + System.getProperty(prop));
+            }
+            cmd.add("SearchWorker");
+            cmd.add("0");
+            cmd.add("once");
+            Process process = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            String ready = out.readLine();
+            if(ready == null || !ready.startsWith("READY ")) {
+                process.destroy();
+                c.close();
+                throw new IOException("worker process did not start");
+            }
+            drain(process.getInputStream());
+            int port = Integer.parseInt(ready.substring(6).trim());
+            Worker w = new Worker("local:" + port, c.open("localhost", port));
+            w.process = process;
+            c.add(w);
+        }
+        return c;
+    }
+
+    /// Makes a coordinator as configured by the chess.workers ("host:port,...")
+    /// or chess.localWorkers (process count) system properties, with silent
+    /// workers timing out after chess.workerTimeoutMs. Returns null if neither
+    /// is set.
+    static SearchCoordinator fromProperties() throws IOException {
+        int timeoutMs = Integer.getInteger("chess.workerTimeoutMs", DEFAULT_TIMEOUT_MS);
+        String addresses = System.getProperty("chess.workers");
+        if(addresses != null)
+            return connect(addresses.split(","), timeoutMs);
+        int count = Integer.getInteger("chess.localWorkers", 0);
+        if(count > 0)
+            return spawnLocal(count, timeoutMs);
+        return null;
+    }
+
+    Socket open(String host, int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+        return socket;
+    }
+
+    void add(Worker w) {
+        m_workers.add(w);
+    }
+
+    /// Discards anything else a worker process prints to stdout
+    static void drain(InputStream in) {
+        Thread t = new Thread(() -> {
+            byte[] buf = new byte[256];
+            try {
+                while(in.read(buf) >= 0) {
+                }
+            }
+            catch(IOException e) {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    synchronized int liveWorkers() {
+        int n = 0;
+        for(Worker w : m_workers) {
+            if(w.alive)
+                n++;
+        }
+        return n;
+    }
+
+    /// Does the same as root.minimax(root, depth, -9999, 9999, true, white)
+    /// with the root moves spread over the workers. Sets ChessState.aimove
+    /// and returns the score of the chosen move. As with minimax, scores
+    /// (from the workers too) are from white's point of view when white is
+    /// choosing the move and from dark's otherwise, so the highest wins.
+    int search(ChessState root, int depth, boolean white) {
+        ArrayList<ChessState.ChessMove> moves = new ArrayList<ChessState.ChessMove>();
+        ArrayList<ChessState> children = new ArrayList<ChessState>();
+        for(ChessState.ChessMoveIterator it = root.iterator(white); it.hasNext();) {
+            ChessState.ChessMove m = it.next();
+            ChessState child = new ChessState(root);
+            try {
+                child.move(m.xSource, m.ySource, m.xDest, m.yDest);
+            }
+            catch(Exception e) {
+                continue;
+            }
+            moves.add(m);
+            children.add(child);
+        }
+        if(depth <= 1 || moves.size() == 0 || ChessState.heuristicWin(root) || liveWorkers() == 0)
+            return root.minimax(root, depth, -9999, 9999, true, white);
+
+        ArrayList<Thread> threads = new ArrayList<Thread>();
+        synchronized(this) {
+            m_searchId++;
+            m_children = children.toArray(new ChessState[0]);
+            m_done = new boolean[m_children.length];
+            m_runners = new ArrayList<ArrayList<Worker>>();
+            m_pending = new ArrayDeque<Integer>();
+            for(int i = 0; i < m_children.length; i++) {
+                m_runners.add(new ArrayList<Worker>());
+                m_pending.add(i);
+            }
+            m_alpha = -9999;
+            m_best = 0;
+            for(Worker w : m_workers) {
+                if(w.alive) {
+                    Thread t = new Thread(() -> runWorker(w, depth - 1, white));
+                    threads.add(t);
+                    t.start();
+                }
+            }
+        }
+        for(Thread t : threads) {
+            try {
+                t.join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // Only happens if every worker died
+        for(int i = 0; i < m_children.length; i++) {
+            if(!m_done[i])
+                finish(i, root.minimax(m_children[i], depth - 1, m_alpha, 9999, false, !white), null);
+        }
+        ChessState.aimove = moves.get(m_best);
+        return m_alpha;
+    }
+
+    /// Feeds root moves to one worker until there are none it could help with
+    void runWorker(Worker w, int depth, boolean white) {
+        while(true) {
+            int task;
+            int searchId;
+            String request;
+            synchronized(this) {
+                task = nextTask(w);
+                if(task < 0)
+                    return;
+                searchId = m_searchId;
+                // The opponent is the one to move in the child position
+                StringBuilder sb = new StringBuilder();
+                sb.append("SEARCH ").append(searchId).append(' ').append(task).append(' ').append(depth)
+                        .append(' ').append(m_alpha).append(" 9999 ").append(white ? 0 : 1)
+                        .append(' ').append(ChessState.playerTurn ? 1 : 0);
+                for(int row : m_children[task].m_rows)
+                    sb.append(' ').append(row);
+                request = sb.toString();
+            }
+            try {
+                w.send(request);
+                if(w.out.checkError())
+                    throw new IOException("write failed");
+                long lastHeard = System.currentTimeMillis();
+                while(true) {
+                    String line = w.readLine(m_timeoutMs / 4);
+                    if(line == null) {
+                        if(System.currentTimeMillis() - lastHeard >= m_timeoutMs)
+                            throw new IOException("no answer for " + m_timeoutMs + "ms");
+                        w.send("PING");
+                        continue;
+                    }
+                    lastHeard = System.currentTimeMillis();
+                    String[] f = line.split(" ");
+                    if(f[0].equals("RESULT") && Integer.parseInt(f[1]) == searchId && Integer.parseInt(f[2]) == task) {
+                        finish(task, Integer.parseInt(f[3]), w);
+                        break;
+                    }
+                }
+            }
+            catch(IOException | RuntimeException e) {
+                System.err.println("Worker " + w.name + " failed: " + e.getMessage());
+                w.close();
+                synchronized(this) {
+                    m_runners.get(task).remove(w);
+                    // Put it back unless someone else is still on it
+                    if(!m_done[task] && m_runners.get(task).isEmpty())
+                        m_pending.addFirst(task);
+                }
+                return;
+            }
+        }
+    }
+
+    /// Picks the next root move for w, or returns -1 when every unfinished
+    /// move is already one w has tried. Call with the lock held.
+    int nextTask(Worker w) {
+        int task = -1;
+        if(!m_pending.isEmpty())
+            task = m_pending.poll();
+        else {
+            // Steal the unfinished move with the fewest workers on it
+            for(int i = 0; i < m_done.length; i++) {
+                if(!m_done[i] && !m_runners.get(i).contains(w)
+                        && (task < 0 || m_runners.get(i).size() < m_runners.get(task).size()))
+                    task = i;
+            }
+        }
+        if(task >= 0)
+            m_runners.get(task).add(w);
+        return task;
+    }
+
+    /// Records the score of a root move. w is the worker that reported it, or
+    /// null if it was searched here.
+    synchronized void finish(int task, int score, Worker w) {
+        if(w != null)
+            m_runners.get(task).remove(w);
+        if(m_done[task])
+            return;
+        m_done[task] = true;
+        if(score > m_alpha) {
+            m_alpha = score;
+            m_best = task;
+            for(Worker other : m_workers) {
+                if(other != w && other.alive)
+                    other.send("ALPHA " + m_searchId + " " + m_alpha);
+            }
+        }
+        // Anyone else still on this move is wasting their time
+        for(Worker other : m_runners.get(task))
+            other.send("STOP " + m_searchId + " " + task);
+    }
+
+    /// Disconnects from the workers and stops any this process started.
+    /// Workers are given a moment to exit on their own after QUIT, so they
+    /// get to report their hit rates.
+    synchronized void close() {
+        for(Worker w : m_workers) {
+            if(w.alive)
+                w.send("QUIT");
+        }
+        for(Worker w : m_workers) {
+            if(w.process != null && w.alive) {
+                try {
+                    w.process.waitFor(QUIT_WAIT_MS, TimeUnit.MILLISECONDS);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            w.close();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/// A search process that a SearchCoordinator hands root moves to. Each
+/// connection speaks a line-based protocol:
+///
+///   SEARCH <search> <task> <depth> <alpha> <beta> <white> <turn> <row0> .. <row7>
+///       search the position given by the rows (the board after a root move)
+///       as a min node, with white (1 or 0) to move. turn is playerTurn.
+///   ALPHA <search> <value>   the root's alpha went up to value
+///   STOP <search> <task>     the result of that task is no longer needed
+///   PING                     answered straight away with PONG, even mid-search
+///   QUIT                     close the connection
+///
+/// and answers each SEARCH with
+///
+///   RESULT <search> <task> <score>
+///
+/// A better root alpha (from SEARCH or ALPHA) goes into ChessState.rootAlpha,
+/// so it cuts subtrees short at every depth, not only between replies. STOP
+/// raises it as far as it goes, which unwinds the search in a few nodes.
+///
+/// Usage: java SearchWorker [port] [once]. It prints "READY <port>" once it is
+/// listening. With "once" it exits after its first coordinator disconnects,
+/// and only accepts connections from this machine (as spawned by
+/// SearchCoordinator.spawnLocal).
+class SearchWorker {
+    Socket m_socket;
+    PrintWriter m_out;
+    Thread m_search;
+    volatile int m_searchId;
+    volatile int m_taskId;
+    volatile int m_alpha;
+    volatile boolean m_stop;
+
+    SearchWorker(Socket socket) throws IOException {
+        m_socket = socket;
+        m_out = new PrintWriter(socket.getOutputStream(), true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = (args.length > 0 ? Integer.parseInt(args[0]) : 0);
+        boolean once = (args.length > 1 && args[1].equals("once"));
+        ChessState.searchCache = SearchCache.fromProperties();
+        ServerSocket server = (once ? new ServerSocket(port, 50, InetAddress.getLoopbackAddress())
+                : new ServerSocket(port));
+        System.out.println("READY " + server.getLocalPort());
+        System.out.flush();
+        // ChessState keeps search state in statics, so serve one coordinator at a time
+        do {
+            try(Socket socket = server.accept()) {
+                socket.setKeepAlive(true);
+                new SearchWorker(socket).serve();
+            }
+            catch(IOException e) {
+                System.err.println("Coordinator connection failed: " + e.getMessage());
+            }
+        } while(!once);
+        server.close();
+    }
+
+    /// Handles requests until the coordinator goes away. A malformed line is
+    /// reported and ignored, so it can't take down a long-running worker.
+    void serve() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(m_socket.getInputStream()));
+        try {
+            String line;
+            while((line = in.readLine()) != null) {
+                String[] f = line.split(" ");
+                if(f[0].equals("QUIT"))
+                    break;
+                try {
+                    handle(f);
+                }
+                catch(NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.err.println("Ignoring malformed request: " + line);
+                }
+            }
+        }
+        finally {
+            // Let a search in progress wind down before taking the next coordinator
+            m_stop = true;
+            ChessState.rootAlpha = 9999;
+            joinSearch();
+            // stdout belongs to the READY handshake, so report on stderr
+            ChessState.reportHitRates(System.err, "Worker " + m_socket.getLocalPort() + ": ");
+        }
+    }
+
+    void handle(String[] f) {
+        if(f[0].equals("SEARCH"))
+            startSearch(f);
+        else if(f[0].equals("ALPHA")) {
+            if(Integer.parseInt(f[1]) == m_searchId) {
+                m_alpha = Math.max(m_alpha, Integer.parseInt(f[2]));
+                if(!m_stop)
+                    ChessState.rootAlpha = m_alpha;
+            }
+        }
+        else if(f[0].equals("STOP")) {
+            if(Integer.parseInt(f[1]) == m_searchId && Integer.parseInt(f[2]) == m_taskId) {
+                m_stop = true;
+                ChessState.rootAlpha = 9999;
+            }
+        }
+        else if(f[0].equals("PING")) {
+            synchronized(m_out) {
+                m_out.println("PONG");
+            }
+        }
+    }
+
+    void startSearch(String[] f) {
+        // Parse the whole request before touching any state
+        int searchId = Integer.parseInt(f[1]);
+        int taskId = Integer.parseInt(f[2]);
+        int depth = Integer.parseInt(f[3]);
+        int alpha = Integer.parseInt(f[4]);
+        int beta = Integer.parseInt(f[5]);
+        boolean white = f[6].equals("1");
+        boolean turn = f[7].equals("1");
+        ChessState node = new ChessState();
+        for(int i = 0; i < 8; i++)
+            node.m_rows[i] = Integer.parseInt(f[8 + i]);
+        joinSearch();
+        ChessState.playerTurn = turn;
+        // Keep any ALPHA that overtook this request for the same root search
+        m_alpha = (searchId == m_searchId ? Math.max(m_alpha, alpha) : alpha);
+        m_searchId = searchId;
+        m_taskId = taskId;
+        m_stop = false;
+        ChessState.rootAlpha = m_alpha;
+        m_search = new Thread(() -> {
+            int score = search(node, depth, beta, white);
+            synchronized(m_out) {
+                m_out.println("RESULT " + searchId + " " + taskId + " " + score);
+            }
+        });
+        m_search.start();
+    }
+
+    void joinSearch() {
+        if(m_search == null)
+            return;
+        try {
+            m_search.join();
+        }
+        catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        m_search = null;
+    }
+
+    /// The min-node loop of ChessState.minimax, except that alpha is re-read
+    /// before each reply so bounds found by other workers cut this search short.
+    /// white is the side replying, so scores are from the other side's point
+    /// of view, the same as at the coordinator's root.
+    int search(ChessState node, int depth, int beta, boolean white) {
+        if(depth == 0 || ChessState.heuristicWin(node))
+            return node.minimax(node, depth, m_alpha, beta, false, white);
+        int bestValue = 9999;
+        ChessState.ChessMoveIterator it = node.iterator(white);
+        while(it.hasNext() && !m_stop) {
+            int alpha = m_alpha;
+            if(Math.min(bestValue, beta) <= alpha)
+                break;
+            ChessState.ChessMove m = it.next();
+            ChessState child = new ChessState(node);
+            try {
+                child.move(m.xSource, m.ySource, m.xDest, m.yDest);
+            }
+            catch(Exception e) {
+                System.err.println("Worker move exception.");
+                continue;
+            }
+            int score = node.minimax(child, depth - 1, alpha, Math.min(bestValue, beta), true, !white);
+            bestValue = Math.min(bestValue, score);
+        }
+        return bestValue;
+    }
+}